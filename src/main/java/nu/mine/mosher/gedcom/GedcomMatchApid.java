@@ -9,7 +9,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
@@ -26,17 +25,7 @@ public class GedcomMatchApid implements Gedcom.Processor {
 
     private final Counts c = new Counts();
 
-    private final List<ChildToBeAdded> newNodes = new ArrayList<>(256);
-
-    private static class ChildToBeAdded {
-        TreeNode<GedcomLine> parent;
-        TreeNode<GedcomLine> child;
-
-        ChildToBeAdded(TreeNode<GedcomLine> parent, TreeNode<GedcomLine> child) {
-            this.parent = parent;
-            this.child = child;
-        }
-    }
+    private PendingAdditions newNodes;
 
 
     public static void main(final String... args) throws InvalidLevel, IOException {
@@ -58,9 +47,19 @@ public class GedcomMatchApid implements Gedcom.Processor {
     @Override
     public boolean process(final GedcomTree tree) {
         this.tree = tree;
-        readGedcom();
-        matchApids();
-        this.newNodes.forEach(a -> a.parent.addChild(a.child));
+        this.newNodes = new PendingAdditions(tree, this.options.budget, this.options.spill);
+        final int cDuplicate;
+        try {
+            readGedcom();
+            matchApids();
+            /* let the Ancestry tree be collected before the new nodes are built */
+            this.ancestry = null;
+            cDuplicate = this.newNodes.apply();
+        } finally {
+            this.newNodes.discard();
+        }
+        this.c.apidsAdded.addAndGet(-cDuplicate);
+        this.c.apidsAlreadyExisted.addAndGet(cDuplicate);
         this.c.logAsWarning();
         log().warning(String.format(Counts.format, "Total new lines added to GEDCOM", this.newNodes.size()));
         return true;
@@ -303,12 +302,7 @@ public class GedcomMatchApid implements Gedcom.Processor {
 
     private void addNewCitation(final String idSour, String apidValue, final TreeNode<GedcomLine> eventOrig) {
         apidValue = apidBug(apidValue);
-        final GedcomLine cita = GedcomLine.createPointer(eventOrig.getObject().getLevel()+1, GedcomTag.SOUR, idSour);
-        final TreeNode<GedcomLine> nodeCita = new TreeNode<>(cita);
-        final GedcomLine apid = cita.createChild("_APID", apidValue);
-        final TreeNode<GedcomLine> nodeApid = new TreeNode<>(apid);
-        nodeCita.addChild(nodeApid);
-        this.newNodes.add(new ChildToBeAdded(eventOrig, nodeCita));
+        this.newNodes.addCitation(eventOrig, idSour, apidValue);
     }
 
     private boolean originalExists(final String id) {
@@ -375,18 +369,13 @@ public class GedcomMatchApid implements Gedcom.Processor {
     }
 
     private boolean apidPendingAdd(final TreeNode<GedcomLine> citaOrig, final String apidAnc) {
-        for (final ChildToBeAdded a : this.newNodes) {
-            if (a.parent == citaOrig && a.child.getObject().getValue().equals(apidAnc)) {
-                return true;
-            }
-        }
-        return false;
+        return this.newNodes.hasApid(citaOrig, apidAnc);
     }
 
-    private void addApidForced(String apidAnc, final TreeNode<GedcomLine> citaOrig) {
-        apidAnc = apidBug(apidAnc);
-        this.newNodes.add(new ChildToBeAdded(citaOrig, new TreeNode<>(citaOrig.getObject().createChild("_APID", apidAnc))));
-        log().finer("Added _APID " + apidAnc + " to original: " + msgFor(citaOrig));
+    private void addApidForced(final String apidAnc, final TreeNode<GedcomLine> citaOrig) {
+        final String apid = apidBug(apidAnc);
+        this.newNodes.addApid(citaOrig, apidAnc, apid);
+        log().finer("Added _APID " + apid + " to original: " + msgFor(citaOrig));
     }
 
 
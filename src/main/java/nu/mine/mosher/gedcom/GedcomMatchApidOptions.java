@@ -7,6 +7,8 @@ import java.io.IOException;
 public class GedcomMatchApidOptions extends GedcomOptions {
     public File gedcom;
     public boolean add;
+    public int budget = Integer.MAX_VALUE;
+    public File spill;
 
     public void help() {
         this.help = true;
@@ -15,6 +17,10 @@ public class GedcomMatchApidOptions extends GedcomOptions {
         System.err.println("Options:");
         System.err.println("-g, --gedcom=FILE    Ancestry GEDCOM file to extract from.");
         System.err.println("-a, --add-citations  If original citation doesn't exist, add it.");
+        System.err.println("-b, --budget=COUNT   While matching, hold at most COUNT pending additions");
+        System.err.println("                     in memory; spill the rest to temporary files.");
+        System.err.println("-s, --spill=DIR      Directory for spill files (default: java.io.tmpdir,");
+        System.err.println("                     which may be memory-backed tmpfs).");
         options();
     }
 
@@ -37,6 +43,32 @@ public class GedcomMatchApidOptions extends GedcomOptions {
         this.add = true;
     }
 
+    public void b(final String count) {
+        budget(count);
+    }
+
+    public void budget(final String count) {
+        try {
+            this.budget = Integer.parseInt(count);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid memory budget: " + count, e);
+        }
+        if (this.budget < 1) {
+            throw new IllegalArgumentException("Invalid memory budget: " + count);
+        }
+    }
+
+    public void s(final String dir) throws IOException {
+        spill(dir);
+    }
+
+    public void spill(final String dir) throws IOException {
+        this.spill = new File(dir);
+        if (!this.spill.isDirectory() || !this.spill.canWrite()) {
+            throw new IllegalArgumentException("Cannot write to spill directory: " + this.spill.getCanonicalPath());
+        }
+    }
+
     public GedcomMatchApidOptions verify() {
         if (this.help) {
             return this;
@@ -0,0 +1,443 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static nu.mine.mosher.logging.Jul.log;
+
+/**
+ * Lines to be added to the original GEDCOM tree, deferred until all matching is done.
+ * Each pending addition is held in a compact form, keyed by the position of its parent
+ * node in the original tree (record position, event index, citation index). While
+ * matching, at most {@code budget} additions are held in memory; beyond that, they are
+ * sorted and spilled to a temporary file. All runs are merged (at most {@code fanIn}
+ * files at a time) and applied to the tree, in file order, by {@link #apply()}.
+ * Note that applying still builds a node for every addition, because the tree is
+ * written out afterwards, as a whole, by {@link Gedcom}.
+ */
+class PendingAdditions {
+    private static final byte KIND_CITATION = 1;
+    private static final byte KIND_APID = 2;
+
+    private static final Comparator<Addition> ORDER =
+        Comparator.comparingInt((Addition a) -> a.iRecord)
+            .thenComparingInt(a -> a.iEvent)
+            .thenComparingInt(a -> a.iCitation)
+            .thenComparingLong(a -> a.seq);
+
+    private static final int FAN_IN = 64;
+
+    private final GedcomTree tree;
+    private final Map<TreeNode<GedcomLine>, Integer> positions = new IdentityHashMap<>();
+    private final int budget;
+    private final File dirSpill;
+    private final int fanIn;
+    private final List<Addition> inMemory = new ArrayList<>(256);
+    /* parent key and written value of each in-memory _APID addition */
+    private final Set<String> inMemoryApids = new HashSet<>();
+    private final List<File> runs = new ArrayList<>();
+    private long seq;
+    private int size;
+
+    private static class Addition {
+        final int iRecord;
+        final int iEvent;
+        final int iCitation;
+        final long seq;
+        final byte kind;
+        /* pointer to SOUR record, for a new citation; otherwise empty */
+        final String idSour;
+        /* _APID value as it will be written */
+        final String value;
+        /* _APID value as found in the Ancestry file (for detecting duplicates); otherwise empty */
+        final String apidAnc;
+
+        Addition(int iRecord, int iEvent, int iCitation, long seq, byte kind, String idSour, String value, String apidAnc) {
+            this.iRecord = iRecord;
+            this.iEvent = iEvent;
+            this.iCitation = iCitation;
+            this.seq = seq;
+            this.kind = kind;
+            this.idSour = idSour;
+            this.value = value;
+            this.apidAnc = apidAnc;
+        }
+
+        boolean sameParent(final Addition that) {
+            return that != null && this.iRecord == that.iRecord && this.iEvent == that.iEvent && this.iCitation == that.iCitation;
+        }
+
+        void write(final DataOutputStream out) throws IOException {
+            out.writeInt(this.iRecord);
+            out.writeInt(this.iEvent);
+            out.writeInt(this.iCitation);
+            out.writeLong(this.seq);
+            out.writeByte(this.kind);
+            out.writeUTF(this.idSour);
+            out.writeUTF(this.value);
+            out.writeUTF(this.apidAnc);
+        }
+
+        static Addition read(final DataInputStream in) throws IOException {
+            final int iRecord;
+            try {
+                iRecord = in.readInt();
+            } catch (final EOFException eof) {
+                return null;
+            }
+            return new Addition(iRecord, in.readInt(), in.readInt(), in.readLong(), in.readByte(), in.readUTF(), in.readUTF(), in.readUTF());
+        }
+    }
+
+    /* one sorted source of additions, being merged */
+    private static abstract class Cursor {
+        Addition head;
+
+        abstract void advance() throws IOException;
+
+        void close() {
+        }
+    }
+
+    private static class FileCursor extends Cursor {
+        private final DataInputStream in;
+
+        private FileCursor(final DataInputStream in) {
+            this.in = in;
+        }
+
+        static FileCursor open(final File file) throws IOException {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final FileCursor cursor = new FileCursor(in);
+            try {
+                cursor.advance();
+            } catch (final IOException | RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+            return cursor;
+        }
+
+        @Override
+        void advance() throws IOException {
+            this.head = Addition.read(this.in);
+        }
+
+        @Override
+        void close() {
+            try {
+                this.in.close();
+            } catch (final IOException ignore) {
+                // will be deleted anyway
+            }
+        }
+    }
+
+    private static class ListCursor extends Cursor {
+        private final Iterator<Addition> i;
+
+        ListCursor(final List<Addition> list) {
+            this.i = list.iterator();
+            advance();
+        }
+
+        @Override
+        void advance() {
+            this.head = this.i.hasNext() ? this.i.next() : null;
+        }
+    }
+
+
+
+    /**
+     * @param tree original tree, which must not change until {@link #apply()}
+     * @param budget maximum count of pending additions to hold in memory
+     * @param dirSpill directory for spill files, or {@code null} for the default temporary directory
+     */
+    PendingAdditions(final GedcomTree tree, final int budget, final File dirSpill) {
+        this(tree, budget, dirSpill, FAN_IN);
+    }
+
+    /**
+     * @param tree original tree, which must not change until {@link #apply()}
+     * @param budget maximum count of pending additions to hold in memory
+     * @param dirSpill directory for spill files, or {@code null} for the default temporary directory
+     * @param fanIn maximum count of spill files to merge at once
+     */
+    PendingAdditions(final GedcomTree tree, final int budget, final File dirSpill, final int fanIn) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Invalid memory budget: " + budget);
+        }
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("Invalid merge fan-in: " + fanIn);
+        }
+        this.tree = tree;
+        this.budget = budget;
+        this.dirSpill = dirSpill;
+        this.fanIn = fanIn;
+
+        int i = 0;
+        for (final TreeNode<GedcomLine> record : tree.getRoot()) {
+            this.positions.put(record, i++);
+        }
+    }
+
+
+
+    void addCitation(final TreeNode<GedcomLine> eventOrig, final String idSour, final String apid) {
+        final TreeNode<GedcomLine> record = eventOrig.parent();
+        add(new Addition(positionOf(record), indexOf(record, eventOrig), -1, this.seq++, KIND_CITATION, idSour, apid, ""));
+    }
+
+    void addApid(final TreeNode<GedcomLine> citaOrig, final String apidAnc, final String apid) {
+        final TreeNode<GedcomLine> eventOrig = citaOrig.parent();
+        final TreeNode<GedcomLine> record = eventOrig.parent();
+        final Addition a = new Addition(positionOf(record), indexOf(record, eventOrig), indexOf(eventOrig, citaOrig), this.seq++, KIND_APID, "", apid, apidAnc);
+        this.inMemoryApids.add(keyOf(a.iRecord, a.iEvent, a.iCitation, apid));
+        add(a);
+    }
+
+    /**
+     * Checks (only) the additions still held in memory, for an _APID (as it will be written)
+     * equal to the given Ancestry _APID. Such duplicates that have already been spilled to
+     * disk are detected, and dropped, by {@link #apply()}.
+     */
+    boolean hasApid(final TreeNode<GedcomLine> citaOrig, final String apidAnc) {
+        if (this.inMemoryApids.isEmpty()) {
+            return false;
+        }
+        final TreeNode<GedcomLine> eventOrig = citaOrig.parent();
+        final TreeNode<GedcomLine> record = eventOrig.parent();
+        return this.inMemoryApids.contains(keyOf(positionOf(record), indexOf(record, eventOrig), indexOf(eventOrig, citaOrig), apidAnc));
+    }
+
+    /**
+     * @return count of additions pending (or, after {@link #apply()}, applied)
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Merges all pending additions into the original tree, in one pass
+     * over its records, and removes any spill files.
+     *
+     * @return count of additions dropped as duplicates of another pending _APID
+     */
+    int apply() {
+        this.inMemory.sort(ORDER);
+
+        final List<Cursor> open = new ArrayList<>(this.fanIn + 1);
+        int cDuplicate = 0;
+        try {
+            while (this.runs.size() > this.fanIn) {
+                final List<File> batch = new ArrayList<>(this.runs.subList(0, this.fanIn));
+                this.runs.subList(0, this.fanIn).clear();
+                this.runs.add(mergeRuns(batch));
+            }
+
+            for (final File file : this.runs) {
+                open.add(FileCursor.open(file));
+            }
+            open.add(new ListCursor(this.inMemory));
+            final PriorityQueue<Cursor> queue = queueOf(open);
+
+            final Iterator<TreeNode<GedcomLine>> records = this.tree.getRoot().iterator();
+            TreeNode<GedcomLine> record = null;
+            int iRecord = -1;
+
+            Addition prev = null;
+            final Set<String> apidsForParent = new HashSet<>();
+            TreeNode<GedcomLine> parent = null;
+            for (Addition next = poll(queue); next != null; next = poll(queue)) {
+                if (!next.sameParent(prev)) {
+                    apidsForParent.clear();
+                    while (iRecord < next.iRecord) {
+                        if (!records.hasNext()) {
+                            throw new IllegalStateException("Original tree changed while additions were pending.");
+                        }
+                        record = records.next();
+                        ++iRecord;
+                    }
+                    parent = resolve(record, next);
+                }
+                prev = next;
+
+                if (next.kind == KIND_APID && apidsForParent.contains(next.apidAnc)) {
+                    log().finer("Dropping duplicate pending _APID " + next.value);
+                    ++cDuplicate;
+                } else {
+                    if (next.kind == KIND_APID) {
+                        apidsForParent.add(next.value);
+                    }
+                    parent.addChild(createNode(parent, next));
+                }
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            open.forEach(Cursor::close);
+            discard();
+        }
+
+        this.size -= cDuplicate;
+        return cDuplicate;
+    }
+
+    /**
+     * Drops any additions not yet applied, and removes any spill files.
+     * Safe to call more than once.
+     */
+    void discard() {
+        this.runs.forEach(File::delete);
+        this.runs.clear();
+        this.inMemory.clear();
+        this.inMemoryApids.clear();
+    }
+
+
+
+    private void add(final Addition a) {
+        this.inMemory.add(a);
+        ++this.size;
+        if (this.inMemory.size() >= this.budget) {
+            spill();
+        }
+    }
+
+    private void spill() {
+        this.inMemory.sort(ORDER);
+        try {
+            final File file = File.createTempFile("gedcom-matchapid-", ".spill", this.dirSpill);
+            this.runs.add(file);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (final Addition a : this.inMemory) {
+                    a.write(out);
+                }
+            }
+            log().fine("Spilled " + this.inMemory.size() + " pending additions to " + file);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.inMemory.clear();
+        this.inMemoryApids.clear();
+    }
+
+    /* merges the given runs into one new run, and deletes them */
+    private File mergeRuns(final List<File> batch) throws IOException {
+        final File merged = File.createTempFile("gedcom-matchapid-", ".spill", this.dirSpill);
+        final List<Cursor> open = new ArrayList<>(batch.size());
+        boolean ok = false;
+        try {
+            for (final File file : batch) {
+                open.add(FileCursor.open(file));
+            }
+            final PriorityQueue<Cursor> queue = queueOf(open);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged)))) {
+                for (Addition next = poll(queue); next != null; next = poll(queue)) {
+                    next.write(out);
+                }
+            }
+            ok = true;
+        } finally {
+            open.forEach(Cursor::close);
+            batch.forEach(File::delete);
+            if (!ok) {
+                merged.delete();
+            }
+        }
+        log().fine("Merged " + batch.size() + " spill files into " + merged);
+        return merged;
+    }
+
+    private static PriorityQueue<Cursor> queueOf(final List<Cursor> cursors) {
+        final PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, cursors.size()), Comparator.comparing((Cursor c) -> c.head, ORDER));
+        for (final Cursor c : cursors) {
+            if (c.head != null) {
+                queue.add(c);
+            }
+        }
+        return queue;
+    }
+
+    private static Addition poll(final PriorityQueue<Cursor> queue) throws IOException {
+        final Cursor c = queue.poll();
+        if (c == null) {
+            return null;
+        }
+        final Addition a = c.head;
+        c.advance();
+        if (c.head != null) {
+            queue.add(c);
+        }
+        return a;
+    }
+
+    private static TreeNode<GedcomLine> resolve(final TreeNode<GedcomLine> record, final Addition a) {
+        final TreeNode<GedcomLine> event = childAt(record, a.iEvent);
+        return a.iCitation < 0 ? event : childAt(event, a.iCitation);
+    }
+
+    private static TreeNode<GedcomLine> createNode(final TreeNode<GedcomLine> parent, final Addition a) {
+        if (a.kind == KIND_CITATION) {
+            final GedcomLine cita = GedcomLine.createPointer(parent.getObject().getLevel()+1, GedcomTag.SOUR, a.idSour);
+            final TreeNode<GedcomLine> nodeCita = new TreeNode<>(cita);
+            nodeCita.addChild(new TreeNode<>(cita.createChild("_APID", a.value)));
+            return nodeCita;
+        }
+        return new TreeNode<>(parent.getObject().createChild("_APID", a.value));
+    }
+
+    private int positionOf(final TreeNode<GedcomLine> record) {
+        final Integer i = this.positions.get(record);
+        if (i == null) {
+            throw new IllegalStateException("Record not found in original tree.");
+        }
+        return i;
+    }
+
+    private static String keyOf(final int iRecord, final int iEvent, final int iCitation, final String apid) {
+        return iRecord + ":" + iEvent + ":" + iCitation + ":" + apid;
+    }
+
+    private static int indexOf(final TreeNode<GedcomLine> parent, final TreeNode<GedcomLine> child) {
+        int i = 0;
+        for (final TreeNode<GedcomLine> c : parent) {
+            if (c == child) {
+                return i;
+            }
+            ++i;
+        }
+        throw new IllegalStateException("Node not found in its parent.");
+    }
+
+    private static TreeNode<GedcomLine> childAt(final TreeNode<GedcomLine> parent, final int index) {
+        int i = 0;
+        for (final TreeNode<GedcomLine> c : parent) {
+            if (i == index) {
+                return c;
+            }
+            ++i;
+        }
+        throw new IllegalStateException("Original tree changed while additions were pending.");
+    }
+}
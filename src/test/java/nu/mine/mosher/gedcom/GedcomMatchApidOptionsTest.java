@@ -0,0 +1,61 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.mopper.ArgParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+public class GedcomMatchApidOptionsTest {
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void budgetDefaultsToUnlimited() {
+        assertEquals(Integer.MAX_VALUE, new GedcomMatchApidOptions().budget);
+    }
+
+    @Test
+    public void budgetLong() throws Exception {
+        final GedcomMatchApidOptions options = new ArgParser<>(new GedcomMatchApidOptions()).parse("--budget=5");
+        assertEquals(5, options.budget);
+    }
+
+    @Test
+    public void budgetShort() {
+        final GedcomMatchApidOptions options = new GedcomMatchApidOptions();
+        options.b("7");
+        assertEquals(7, options.budget);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetZeroRejected() {
+        new GedcomMatchApidOptions().budget("0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetNegativeRejected() {
+        new GedcomMatchApidOptions().budget("-3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetNonNumberRejected() {
+        new GedcomMatchApidOptions().budget("lots");
+    }
+
+    @Test
+    public void spillDirectory() throws Exception {
+        final File dir = this.temp.newFolder();
+        final GedcomMatchApidOptions options = new GedcomMatchApidOptions();
+        options.spill(dir.getPath());
+        assertEquals(dir, options.spill);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void spillDirectoryMissingRejected() throws Exception {
+        new GedcomMatchApidOptions().spill(new File(this.temp.getRoot(), "missing").getPath());
+    }
+}
@@ -0,0 +1,218 @@
+package nu.mine.mosher.gedcom;
+
+import nu.mine.mosher.collection.TreeNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PendingAdditionsTest {
+    private static final String GEDCOM =
+        "0 HEAD\n" +
+        "1 CHAR ASCII\n" +
+        "0 @I2@ INDI\n" +
+        "1 NAME Jane /Doe/\n" +
+        "1 RESI\n" +
+        "2 SOUR @S2@\n" +
+        "0 @I10@ INDI\n" +
+        "1 NAME John /Doe/\n" +
+        "1 BIRT\n" +
+        "2 DATE 1900\n" +
+        "2 SOUR @S1@\n" +
+        "3 PAGE p1\n" +
+        "2 SOUR @S2@\n" +
+        "1 DEAT\n" +
+        "2 SOUR @S1@\n" +
+        "0 @S1@ SOUR\n" +
+        "0 @S2@ SOUR\n" +
+        "0 TRLR\n";
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private static class Result {
+        final String tree;
+        final int cAdded;
+        final int cDuplicate;
+
+        Result(final String tree, final int cAdded, final int cDuplicate) {
+            this.tree = tree;
+            this.cAdded = cAdded;
+            this.cDuplicate = cDuplicate;
+        }
+    }
+
+    @Test
+    public void unlimitedBudget() throws Exception {
+        final Result r = run(Integer.MAX_VALUE, 64);
+        assertEquals(9, r.cAdded);
+        assertEquals(3, r.cDuplicate);
+    }
+
+    @Test
+    public void spillEveryAdditionGivesSameResult() throws Exception {
+        assertSame(run(Integer.MAX_VALUE, 64), run(1, 64));
+    }
+
+    @Test
+    public void spillWithSmallBudgetGivesSameResult() throws Exception {
+        assertSame(run(Integer.MAX_VALUE, 64), run(3, 64));
+    }
+
+    @Test
+    public void cascadedMergeGivesSameResult() throws Exception {
+        assertSame(run(Integer.MAX_VALUE, 64), run(1, 2));
+        assertSame(run(Integer.MAX_VALUE, 64), run(2, 3));
+    }
+
+    @Test
+    public void spillFilesRemovedAfterApply() throws Exception {
+        final File dir = this.temp.newFolder();
+        final GedcomTree tree = readTree();
+        final PendingAdditions pending = new PendingAdditions(tree, 1, dir, 2);
+        addSome(pending, tree);
+        assertEquals(3, spillFiles(dir));
+        pending.apply();
+        assertEquals(0, spillFiles(dir));
+    }
+
+    @Test
+    public void spillFilesRemovedAfterFailedApply() throws Exception {
+        final File dir = this.temp.newFolder();
+        final GedcomTree tree = readTree();
+        final PendingAdditions pending = new PendingAdditions(tree, 1, dir);
+        addSome(pending, tree);
+        final File run = dir.listFiles()[0];
+        Files.write(run.toPath(), Arrays.copyOf(Files.readAllBytes(run.toPath()), 6));
+        try {
+            pending.apply();
+            fail("expected truncated spill file to fail");
+        } catch (final UncheckedIOException expected) {
+            // OK
+        }
+        assertEquals(0, spillFiles(dir));
+    }
+
+    @Test
+    public void spillFilesRemovedOnDiscard() throws Exception {
+        final File dir = this.temp.newFolder();
+        final GedcomTree tree = readTree();
+        final PendingAdditions pending = new PendingAdditions(tree, 1, dir);
+        addSome(pending, tree);
+        assertEquals(3, spillFiles(dir));
+        pending.discard();
+        assertEquals(0, spillFiles(dir));
+    }
+
+    private static void addSome(final PendingAdditions pending, final GedcomTree tree) {
+        final TreeNode<GedcomLine> indi = childAt(tree.getRoot(), 2);
+        final TreeNode<GedcomLine> birt = childAt(indi, 1);
+        pending.addApid(childAt(birt, 1), "1,7602::100", "1,7602::100");
+        pending.addApid(childAt(birt, 2), "1,7602::200", "1,7602::200");
+        pending.addCitation(birt, "S2", "1,7602::300");
+    }
+
+    private static int spillFiles(final File dir) {
+        return dir.listFiles().length;
+    }
+
+    private static GedcomTree readTree() throws Exception {
+        return Gedcom.readFile(new BufferedInputStream(new ByteArrayInputStream(GEDCOM.getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    private static void assertSame(final Result expected, final Result actual) {
+        assertEquals(expected.tree, actual.tree);
+        assertEquals(expected.cAdded, actual.cAdded);
+        assertEquals(expected.cDuplicate, actual.cDuplicate);
+    }
+
+    private Result run(final int budget, final int fanIn) throws Exception {
+        final File dir = this.temp.newFolder();
+        final GedcomTree tree = readTree();
+        final TreeNode<GedcomLine> indi2 = childAt(tree.getRoot(), 1);
+        final TreeNode<GedcomLine> resi = childAt(indi2, 1);
+        final TreeNode<GedcomLine> resiS2 = childAt(resi, 0);
+        final TreeNode<GedcomLine> indi = childAt(tree.getRoot(), 2);
+        final TreeNode<GedcomLine> birt = childAt(indi, 1);
+        final TreeNode<GedcomLine> deat = childAt(indi, 2);
+        final TreeNode<GedcomLine> birtS1 = childAt(birt, 1);
+        final TreeNode<GedcomLine> birtS2 = childAt(birt, 2);
+        final TreeNode<GedcomLine> deatS1 = childAt(deat, 0);
+
+        final PendingAdditions pending = new PendingAdditions(tree, budget, dir, fanIn);
+        int cDuplicate = 0;
+
+        cDuplicate += addApid(pending, birtS1, "1,7602::100", "1,7602::100");
+        /* earlier record in the file, but later by ID */
+        cDuplicate += addApid(pending, resiS2, "1,7602::700", "1,7602::700");
+        cDuplicate += addApid(pending, birtS2, "1,7602::200", "1,7602::200");
+        pending.addCitation(deat, "S2", "1,7602::300");
+        /* duplicate of a pending _APID under the same citation */
+        cDuplicate += addApid(pending, birtS1, "1,7602::100", "1,7602::100");
+        pending.addCitation(deat, "S1", "1,7602::400");
+        /* written value differs from the Ancestry value, so never a duplicate */
+        cDuplicate += addApid(pending, deatS1, "1,7602::500abc", "1,7602::500");
+        cDuplicate += addApid(pending, deatS1, "1,7602::500abc", "1,7602::500");
+        /* but a later, clean, Ancestry value does match the written one */
+        cDuplicate += addApid(pending, deatS1, "1,7602::500", "1,7602::500");
+        cDuplicate += addApid(pending, birtS2, "1,7602::200", "1,7602::200");
+        pending.addCitation(birt, "S1", "1,7602::600");
+        pending.addCitation(resi, "S1", "1,7602::800");
+
+        cDuplicate += pending.apply();
+        assertEquals(0, spillFiles(dir));
+
+        return new Result(render(tree.getRoot()), pending.size(), cDuplicate);
+    }
+
+    /* as GedcomMatchApid does it: skip if already pending (in memory) */
+    private static int addApid(final PendingAdditions pending, final TreeNode<GedcomLine> cita, final String apidAnc, final String apid) {
+        if (pending.hasApid(cita, apidAnc)) {
+            return 1;
+        }
+        pending.addApid(cita, apidAnc, apid);
+        return 0;
+    }
+
+    private static TreeNode<GedcomLine> childAt(final TreeNode<GedcomLine> parent, final int index) {
+        int i = 0;
+        for (final TreeNode<GedcomLine> c : parent) {
+            if (i++ == index) {
+                return c;
+            }
+        }
+        throw new IllegalStateException("missing child " + index);
+    }
+
+    private static String render(final TreeNode<GedcomLine> root) {
+        final StringBuilder sb = new StringBuilder(1024);
+        for (final TreeNode<GedcomLine> c : root) {
+            render(c, sb);
+        }
+        return sb.toString();
+    }
+
+    private static void render(final TreeNode<GedcomLine> node, final StringBuilder sb) {
+        final GedcomLine g = node.getObject();
+        sb.append(g.getLevel()).append(' ');
+        if (g.hasID()) {
+            sb.append('@').append(g.getID()).append("@ ");
+        }
+        sb.append(g.getTagString()).append(' ');
+        sb.append(g.isPointer() ? "@" + g.getPointer() + "@" : g.getValue());
+        sb.append('\n');
+        for (final TreeNode<GedcomLine> c : node) {
+            render(c, sb);
+        }
+    }
+}